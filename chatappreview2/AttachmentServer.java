@@ -0,0 +1,354 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Out-of-band file transfer service, kept off the chat connection so large
+ * transfers never sit in front of chat lines. One request per connection:
+ *
+ *   PUT <size> <token>\n  ->  READY\n, then size bytes  ->  OK <id>\n
+ *   GET <id> <offset>\n   ->  OK <remaining>\n followed by the bytes
+ *
+ * Errors are reported as "ERR <reason>\n". An uploader sends the body only
+ * after READY, so a refused upload gets its reason instead of a reset. An upload needs a one-time token
+ * that the chat server issues to a connected client (/upload), so only chat
+ * members can write to the store. Downloads are streamed from the store with
+ * FileChannel.transferTo in fixed-size chunks; a client resumes an
+ * interrupted download by asking again from the length it already has.
+ *
+ * Every connection must send its header within HEADER_TIMEOUT_MILLIS and
+ * then keep the transfer moving, or it is dropped, so idle sockets cannot
+ * hold the worker pool. All transfers share one bandwidth budget.
+ */
+class AttachmentServer implements Runnable {
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_HEADER_BYTES = 256;
+    private static final long HEADER_TIMEOUT_MILLIS = 10_000;
+    private static final long UPLOAD_TOKEN_MILLIS = 60_000;     // how long an issued token stays valid
+
+    private final ServerSocketChannel listener;
+    private final AttachmentStore store;
+    private final ExecutorService workers;
+    private final long maxUploadBytes;
+    private final long idleTimeoutMillis;
+    private final AttachmentStore.RateLimiter limiter;
+    private final Map<String, UploadGrant> uploadTokens = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private volatile boolean running = true;
+
+    AttachmentServer(int port, AttachmentStore store, int maxTransfers, long maxUploadBytes,
+                     long bytesPerSecond, long idleTimeoutMillis) throws IOException {
+        this.listener = ServerSocketChannel.open();
+        this.listener.bind(new InetSocketAddress(port));
+        this.store = store;
+        this.maxUploadBytes = maxUploadBytes;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.limiter = new AttachmentStore.RateLimiter(bytesPerSecond);
+
+        // A short queue absorbs bursts; beyond it connections are refused rather than piling up
+        this.workers = new ThreadPoolExecutor(maxTransfers, maxTransfers, 0L, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<>(maxTransfers * 4), task -> {
+            Thread thread = new Thread(task);
+            thread.setName("AttachmentTransfer-" + thread.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    AttachmentStore getStore() {
+        return store;
+    }
+
+    /** One-time upload token for a connected chat client. */
+    String issueUploadToken(String clientId) {
+        long now = System.nanoTime();
+        uploadTokens.values().removeIf(grant -> grant.expiresAt - now < 0);
+
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = AttachmentStore.toHex(bytes);
+        uploadTokens.put(token, new UploadGrant(clientId, now + TimeUnit.MILLISECONDS.toNanos(UPLOAD_TOKEN_MILLIS)));
+        return token;
+    }
+
+    /** Drops the client's unused tokens; called when it leaves the chat. */
+    void revokeUploadTokens(String clientId) {
+        uploadTokens.values().removeIf(grant -> grant.clientId.equals(clientId));
+    }
+
+    // Tokens are single use: redeeming one removes it whether or not it is still valid
+    private String redeemUploadToken(String token) {
+        UploadGrant grant = uploadTokens.remove(token);
+        if (grant == null || grant.expiresAt - System.nanoTime() < 0) {
+            return null;
+        }
+        return grant.clientId;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting attachment connection: " + e.getMessage());
+                }
+                continue;
+            }
+
+            try {
+                workers.execute(() -> handle(channel));
+            } catch (RejectedExecutionException e) {
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    void close() {
+        running = false;
+        workers.shutdownNow();
+        try {
+            listener.close();
+        } catch (IOException e) {
+            System.err.println("Error closing attachment listener: " + e.getMessage());
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (SocketChannel socket = channel;
+             TimedChannel client = new TimedChannel(socket, idleTimeoutMillis)) {
+            client.setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HEADER_TIMEOUT_MILLIS));
+            String[] request = readHeader(client).split(" ");
+            client.setDeadline(0);
+
+            try {
+                if (request[0].equals("PUT") && request.length == 3) {
+                    handleUpload(client, Long.parseLong(request[1]), request[2]);
+                } else if (request[0].equals("GET") && request.length == 3) {
+                    handleDownload(client, request[1], Long.parseLong(request[2]));
+                } else {
+                    reply(client, "ERR Unknown request");
+                }
+            } catch (NumberFormatException e) {
+                reply(client, "ERR Malformed number in request");
+            }
+        } catch (IOException e) {
+            System.err.println("Attachment transfer error: " + e.getMessage());
+        }
+    }
+
+    private void handleUpload(TimedChannel client, long size, String token) throws IOException {
+        if (size <= 0 || size > maxUploadBytes) {
+            reply(client, "ERR Attachment size must be between 1 and " + maxUploadBytes + " bytes");
+            return;
+        }
+
+        String clientId = redeemUploadToken(token);
+        if (clientId == null) {
+            reply(client, "ERR Upload not authorized. Request a token with /upload in the chat.");
+            return;
+        }
+
+        if (!store.reserve(size)) {
+            reply(client, "ERR Attachment store is full");
+            return;
+        }
+        try {
+            reply(client, "READY");
+        } catch (IOException e) {
+            store.cancel(size);
+            throw e;
+        }
+
+        String id = store.store(client, size, limiter);
+        System.out.println("Stored attachment " + id + " (" + size + " bytes) from " + clientId);
+        reply(client, "OK " + id);
+    }
+
+    private void handleDownload(TimedChannel client, String id, long offset) throws IOException {
+        Path path = store.find(id);
+        if (path == null) {
+            reply(client, "ERR Attachment not found");
+            return;
+        }
+
+        FileChannel file;
+        try {
+            file = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // Evicted since find()
+            reply(client, "ERR Attachment not found");
+            return;
+        }
+
+        try (file) {
+            long size = file.size();
+            if (offset < 0 || offset > size) {
+                reply(client, "ERR Offset out of range");
+                return;
+            }
+            reply(client, "OK " + (size - offset));
+
+            // Zero-copy: the kernel moves file pages straight to the socket
+            long position = offset;
+            while (position < size) {
+                long sent = client.transferFrom(file, position, Math.min(CHUNK_SIZE, size - position));
+                position += sent;
+                limiter.acquire(sent);
+            }
+        }
+    }
+
+    // Headers are tiny, so reading a byte at a time keeps the body untouched in the channel
+    private static String readHeader(TimedChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+        while (header.size() < MAX_HEADER_BYTES) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new EOFException("Connection closed before request header");
+            }
+            byte b = one.get(0);
+            if (b == '\n') {
+                return header.toString(StandardCharsets.UTF_8).trim();
+            }
+            header.write(b);
+        }
+        throw new IOException("Request header too long");
+    }
+
+    private static void reply(TimedChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Ignore, the connection is being discarded anyway
+        }
+    }
+
+    private static class UploadGrant {
+        final String clientId;
+        final long expiresAt;           // System.nanoTime()
+
+        UploadGrant(String clientId, long expiresAt) {
+            this.clientId = clientId;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Blocking-style reads and writes over a non-blocking socket. Each wait
+     * for the peer is bounded by the idle timeout, and by the deadline when
+     * one is set, so a peer that stops sending or stops reading is dropped
+     * instead of holding a worker thread.
+     */
+    private static class TimedChannel implements ByteChannel {
+        private final SocketChannel channel;
+        private final Selector selector;
+        private final SelectionKey key;
+        private final long idleNanos;
+        private long deadline;          // System.nanoTime(), 0 for none
+
+        TimedChannel(SocketChannel channel, long idleMillis) throws IOException {
+            this.channel = channel;
+            this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+            channel.configureBlocking(false);
+            this.selector = Selector.open();
+            this.key = channel.register(selector, 0);
+        }
+
+        void setDeadline(long deadline) {
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            while (true) {
+                int read = channel.read(dst);
+                if (read != 0 || !dst.hasRemaining()) return read;
+                await(SelectionKey.OP_READ);
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            while (true) {
+                int written = channel.write(src);
+                if (written != 0 || !src.hasRemaining()) return written;
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+
+        /** file.transferTo straight into the socket, waiting while its send buffer is full. */
+        long transferFrom(FileChannel file, long position, long count) throws IOException {
+            while (true) {
+                long sent = file.transferTo(position, count, channel);
+                if (sent > 0) return sent;
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void await(int ops) throws IOException {
+            long end = System.nanoTime() + idleNanos;
+            if (deadline != 0 && deadline - end < 0) {
+                end = deadline;
+            }
+
+            key.interestOps(ops);
+            while (true) {
+                long remaining = end - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Transfer timed out");
+                }
+                int ready = selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+                selector.selectedKeys().clear();
+                if (ready > 0) {
+                    key.interestOps(0);
+                    return;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Transfer interrupted");
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            selector.close();
+            channel.close();
+        }
+    }
+}
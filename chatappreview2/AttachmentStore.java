@@ -0,0 +1,265 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed attachment storage. Each upload is written once under
+ * its SHA-256 hex digest; uploading the same bytes again reuses the
+ * existing file. Chat messages only ever carry the digest.
+ *
+ * The store is capped at maxBytes in total. An upload reserves its size
+ * before any byte is read. When the reservation does not fit, the store
+ * recounts the directory (files may have been removed by hand) and then
+ * evicts least recently used attachments, oldest modification time first,
+ * until it does. Storing or looking up an attachment refreshes its time.
+ */
+class AttachmentStore {
+    private static final Pattern ID_PATTERN = Pattern.compile("[0-9a-f]{64}");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path root;
+    private final long maxBytes;
+
+    // Guarded by this; eviction and moving uploads into place also hold it,
+    // so an attachment cannot be evicted between being stored and reported
+    private long storedBytes;               // completed attachments in root
+    private long reservedBytes;             // uploads in progress
+
+    AttachmentStore(Path root, long maxBytes) throws IOException {
+        this.root = root;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(root);
+
+        // Temp files left by a crash are never completed
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "upload-*.tmp")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        storedBytes = countStoredBytes();
+    }
+
+    /** Stored file for the id, or null if the id is malformed or unknown. */
+    Path find(String id) {
+        if (id == null || !ID_PATTERN.matcher(id).matches()) {
+            return null;
+        }
+        Path file = root.resolve(id);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        touch(file);
+        return file;
+    }
+
+    /**
+     * Sets aside room for an upload of size bytes, evicting old attachments
+     * if needed. Returns false if it still does not fit, e.g. because uploads
+     * in progress hold the room. A successful reservation must be settled by
+     * store() or cancel().
+     */
+    synchronized boolean reserve(long size) throws IOException {
+        if (reservedBytes + size > maxBytes) {
+            // Would not fit even in an empty store; don't evict for nothing
+            return false;
+        }
+        if (storedBytes + reservedBytes + size > maxBytes) {
+            storedBytes = countStoredBytes();
+            evict(storedBytes + reservedBytes + size - maxBytes);
+        }
+        if (storedBytes + reservedBytes + size > maxBytes) {
+            return false;
+        }
+        reservedBytes += size;
+        return true;
+    }
+
+    /** Gives back a reservation that will not be used. */
+    synchronized void cancel(long size) {
+        reservedBytes -= size;
+    }
+
+    /**
+     * Reads exactly size bytes from the channel into the store and returns the
+     * content id. The bytes go to a temp file first and are only moved into
+     * place once the digest is known, so a partial upload is never visible.
+     * The caller must have reserved size; the reservation is settled here
+     * whether or not the upload completes.
+     */
+    String store(ReadableByteChannel source, long size, RateLimiter limiter) throws IOException {
+        MessageDigest digest = newDigest();
+        Path temp;
+        try {
+            temp = Files.createTempFile(root, "upload-", ".tmp");
+        } catch (IOException e) {
+            cancel(size);
+            throw e;
+        }
+
+        try {
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                long remaining = size;
+
+                while (remaining > 0) {
+                    buffer.clear();
+                    if (remaining < buffer.capacity()) {
+                        buffer.limit((int) remaining);
+                    }
+
+                    int read = source.read(buffer);
+                    if (read < 0) {
+                        throw new EOFException("Upload ended after " + (size - remaining) + " of " + size + " bytes");
+                    }
+
+                    buffer.flip();
+                    digest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        file.write(buffer);
+                    }
+
+                    remaining -= read;
+                    limiter.acquire(read);
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            cancel(size);
+            throw e;
+        }
+
+        String id = toHex(digest.digest());
+        Path target = root.resolve(id);
+        synchronized (this) {
+            reservedBytes -= size;
+            try {
+                if (Files.exists(target)) {
+                    // Same content already stored
+                    Files.delete(temp);
+                    touch(target);
+                } else {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                    storedBytes += size;
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+        }
+        return id;
+    }
+
+    private long countStoredBytes() throws IOException {
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, this::isAttachment)) {
+            for (Path file : files) {
+                total += Files.size(file);
+            }
+        }
+        return total;
+    }
+
+    // Least recently used first; caller holds the lock
+    private void evict(long bytesNeeded) throws IOException {
+        List<Path> candidates = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, this::isAttachment)) {
+            for (Path file : files) {
+                candidates.add(file);
+            }
+        }
+        candidates.sort(Comparator.comparing(AttachmentStore::lastModified));
+
+        long freed = 0;
+        for (Path file : candidates) {
+            if (freed >= bytesNeeded) break;
+            long size = Files.size(file);
+            if (Files.deleteIfExists(file)) {
+                freed += size;
+                storedBytes -= size;
+                System.out.println("Evicted attachment " + file.getFileName() + " (" + size + " bytes)");
+            }
+        }
+    }
+
+    private boolean isAttachment(Path file) {
+        return ID_PATTERN.matcher(file.getFileName().toString()).matches() && Files.isRegularFile(file);
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    // Eviction is by modification time, so use refreshes it
+    private static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // Only affects eviction order
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Bandwidth budget shared by every transfer that holds it. Callers report
+     * bytes as they move them and sleep until the budget has paid for them,
+     * so concurrent transfers split the rate instead of each getting all of
+     * it. Idle time is not banked, so a quiet period cannot be spent later
+     * as one large burst.
+     */
+    static class RateLimiter {
+        private final long bytesPerSecond;
+        private long paidUntilNanos = System.nanoTime();
+
+        RateLimiter(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(long bytes) throws InterruptedIOException {
+            if (bytesPerSecond <= 0 || bytes <= 0) return;
+
+            long waitNanos;
+            synchronized (this) {
+                long now = System.nanoTime();
+                paidUntilNanos = Math.max(paidUntilNanos, now) + bytes * 1_000_000_000L / bytesPerSecond;
+                waitNanos = paidUntilNanos - now;
+            }
+            if (waitNanos > 0) {
+                try {
+                    Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while rate limiting");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,424 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the real server pipeline over LoopbackTransport so throughput, CPU
+ * and allocation numbers reflect the chat engine alone, without kernel TCP.
+ *
+ * Usage: java ChatBenchmark [clients] [messagesPerClient]
+ *        java ChatBenchmark fanout [maxRecipients]
+ *        java ChatBenchmark decode [lines]
+ *
+ * The fanout mode skips the transport and times Fanout alone, sequential vs
+ * parallel, for growing room sizes to find chat.parallelFanoutThreshold.
+ * Each recipient has its own parked writer thread, so every delivery pays
+ * the wake-up the server's Outbox pays.
+ * The decode mode compares bytes allocated per inbound line for the old
+ * BufferedReader path and LineDecoder, running the same per-line checks.
+ *
+ * Every client sends the same fixed messages, so runs are repeatable and can
+ * be compared across changes. The server still uses a reader and a writer
+ * thread per connection, so the practical client count is bounded by how
+ * many threads the JVM can start rather than by the transport.
+ */
+public class ChatBenchmark {
+    private static final long TIMEOUT_SECONDS = 120;
+    private static final int FANOUT_SHARD_SIZE = Integer.getInteger("chat.fanoutShardSize", 1024);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("fanout")) {
+            runFanoutSweep(args.length > 1 ? Integer.parseInt(args[1]) : 16384);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("decode")) {
+            runDecodeComparison(args.length > 1 ? Integer.parseInt(args[1]) : 200000);
+            return;
+        }
+
+        int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int messagesPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        // Must be set before the Server class is initialized
+        System.setProperty("chat.maxClients", String.valueOf(clientCount));
+
+        // Server logging still runs, but its output would bury the results
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        LoopbackTransport transport = new LoopbackTransport();
+        Thread serverThread = new Thread(() -> Server.serve(transport));
+        serverThread.setName("BenchmarkServer");
+        serverThread.start();
+
+        long expectedPerClient = (long) (clientCount - 1) * messagesPerClient;
+        CountDownLatch welcomed = new CountDownLatch(clientCount);
+        CountDownLatch delivered = new CountDownLatch(clientCount);
+        AtomicLong deliveredLines = new AtomicLong();
+        AtomicLong orderViolations = new AtomicLong();
+
+        List<Transport.Connection> connections = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            Transport.Connection connection = transport.connect();
+            connections.add(connection);
+            startReader(connection, "BenchReader-" + i, clientCount, expectedPerClient,
+                        welcomed, delivered, deliveredLines, orderViolations);
+        }
+
+        if (!welcomed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            System.err.println("Timed out waiting for clients to connect");
+            System.exit(1);
+        }
+
+        console.println("Clients: " + clientCount + ", messages per client: " + messagesPerClient);
+
+        Map<String, Long> allocatedBefore = allocatedByThreadGroup();
+        long cpuBefore = totalCpuNanos();
+        long start = System.nanoTime();
+
+        // Senders stay alive until measurement ends so their allocations are counted
+        CountDownLatch measured = new CountDownLatch(1);
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(connections.get(i).getOutputStream(), StandardCharsets.UTF_8)));
+            String name = "bench-" + i;
+            Thread sender = new Thread(() -> {
+                for (int m = 0; m < messagesPerClient; m++) {
+                    out.println(name + ": message " + m);
+                }
+                out.flush();
+                try {
+                    measured.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            sender.setName("BenchSender-" + i);
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.start();
+        }
+
+        boolean complete = delivered.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        long cpu = totalCpuNanos() - cpuBefore;
+        Map<String, Long> allocatedAfter = allocatedByThreadGroup();
+        measured.countDown();
+
+        long sent = (long) clientCount * messagesPerClient;
+        long lines = deliveredLines.get();
+        double seconds = elapsed / 1_000_000_000.0;
+
+        console.println(complete ? "Run complete" : "Run timed out, results are partial");
+        console.printf("Elapsed: %.3f s%n", seconds);
+        console.printf("Messages sent: %d (%.0f msg/s)%n", sent, sent / seconds);
+        console.printf("Lines delivered: %d of %d (%.0f lines/s)%n",
+                       lines, expectedPerClient * clientCount, lines / seconds);
+        console.println("Per-sender order violations: " + orderViolations.get());
+        if (cpu >= 0) {
+            console.printf("CPU time: %.3f s%n", cpu / 1_000_000_000.0);
+        }
+        if (allocatedAfter != null) {
+            // Per group, so server-side decode cost isn't hidden behind the simulated clients
+            long allocated = 0;
+            for (Map.Entry<String, Long> group : allocatedAfter.entrySet()) {
+                long bytes = group.getValue() - allocatedBefore.getOrDefault(group.getKey(), 0L);
+                allocated += bytes;
+                console.printf("Allocated by %-22s %12d bytes (%.0f per message sent)%n",
+                               group.getKey() + ":", bytes, (double) bytes / sent);
+            }
+            console.printf("Allocated total: %d bytes (%.0f per message sent, %.0f per line delivered)%n",
+                           allocated, (double) allocated / sent, lines > 0 ? (double) allocated / lines : 0.0);
+        }
+
+        Server.shutdown();
+        serverThread.join(TimeUnit.SECONDS.toMillis(5));
+        System.exit(complete && orderViolations.get() == 0 ? 0 : 1);
+    }
+
+    private static void runFanoutSweep(int maxRecipients) {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        if (parallelism <= 1) {
+            // Fanout never shards on a single worker, so both columns would time the same loop
+            System.out.println("Fan-out sweep skipped: only 1 core available, the parallel path never runs");
+            return;
+        }
+
+        Fanout sequential = new Fanout(Integer.MAX_VALUE, FANOUT_SHARD_SIZE, parallelism);
+        Fanout parallel = new Fanout(0, FANOUT_SHARD_SIZE, parallelism);
+
+        System.out.println("Fan-out sweep on " + parallelism + " cores, shard size " + FANOUT_SHARD_SIZE);
+        System.out.printf("%10s %16s %16s %8s%n", "recipients", "sequential us", "parallel us", "speedup");
+
+        // One parked writer per recipient, created once; each room is a prefix of them
+        List<Mailbox> mailboxes = new ArrayList<>(maxRecipients);
+        for (int i = 0; i < maxRecipients; i++) {
+            Mailbox mailbox = new Mailbox();
+            Thread writer = new Thread(null, mailbox, "Mailbox-" + i, 256 * 1024);
+            writer.setDaemon(true);
+            writer.start();
+            mailboxes.add(mailbox);
+        }
+
+        int payoff = -1;
+        try {
+            for (int size = 256; size <= maxRecipients; size *= 2) {
+                List<Mailbox> room = mailboxes.subList(0, size);
+
+                double sequentialMicros = timeBroadcast(sequential, room);
+                double parallelMicros = timeBroadcast(parallel, room);
+                System.out.printf("%10d %16.1f %16.1f %7.2fx%n", size, sequentialMicros, parallelMicros,
+                                  sequentialMicros / parallelMicros);
+
+                // Require a clear win so timing noise doesn't pick the threshold
+                if (payoff < 0 && parallelMicros * 1.1 < sequentialMicros) {
+                    payoff = size;
+                }
+            }
+        } finally {
+            for (Mailbox mailbox : mailboxes) {
+                mailbox.close();
+            }
+        }
+
+        if (payoff > 0) {
+            System.out.println("Parallel fan-out pays off from about " + payoff +
+                               " recipients (-Dchat.parallelFanoutThreshold=" + payoff + ")");
+        } else {
+            System.out.println("Parallel fan-out did not pay off up to " + maxRecipients + " recipients");
+        }
+    }
+
+    // Average microseconds per broadcast after a warm-up pass
+    private static double timeBroadcast(Fanout fanout, Collection<Mailbox> room) {
+        int iterations = Math.max(5, 100_000 / room.size());
+        String message = "Client: bench: fan-out message";
+
+        for (int i = 0; i < iterations; i++) {
+            fanout.deliver(room, mailbox -> mailbox.offer(message));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            fanout.deliver(room, mailbox -> mailbox.offer(message));
+        }
+        return (System.nanoTime() - start) / 1000.0 / iterations;
+    }
+
+    /**
+     * Stand-in for the server's Outbox: lock, bounded enqueue, notifyAll, and
+     * a writer thread parked in wait() that takes one line per lock. Waking
+     * that writer is most of what a delivery costs, so it has to be here for
+     * the sweep to time the curve the server actually sees.
+     */
+    private static class Mailbox implements Runnable {
+        private static final int CAPACITY = 64;
+        private final ArrayDeque<String> lines = new ArrayDeque<>();
+        private boolean closed;
+        private long written;                   // writer thread only
+
+        synchronized void offer(String line) {
+            if (lines.size() >= CAPACITY) {
+                lines.pollFirst();
+            }
+            lines.addLast(line);
+            notifyAll();
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    String line;
+                    synchronized (this) {
+                        while (!closed && lines.isEmpty()) {
+                            wait();
+                        }
+                        if (closed) return;
+                        line = lines.pollFirst();
+                    }
+                    // Stands in for the socket write, done outside the lock as in Outbox
+                    written += line.length();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void runDecodeComparison(int lineCount) throws IOException {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        for (int i = 0; i < lineCount; i++) {
+            String line = i % 50 == 0 ? "/time" : "bench-" + (i % 100) + ": message " + i;
+            input.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] bytes = input.toByteArray();
+
+        System.out.println("Inbound decode, " + lineCount + " lines, bytes allocated per line:");
+        System.out.printf("%-28s %10s %16s%n", "", "checks", "checks + strings");
+
+        // Warm up both paths so JIT compilation doesn't land in the measurement
+        for (int i = 0; i < 5; i++) {
+            decodeWithReader(bytes, true);
+            decodeWithLineDecoder(bytes, true);
+        }
+
+        System.out.printf("%-28s %10.1f %16.1f%n", "BufferedReader.readLine",
+                          allocatedPerLine(() -> decodeWithReader(bytes, false), lineCount),
+                          allocatedPerLine(() -> decodeWithReader(bytes, true), lineCount));
+        System.out.printf("%-28s %10.1f %16.1f%n", "LineDecoder",
+                          allocatedPerLine(() -> decodeWithLineDecoder(bytes, false), lineCount),
+                          allocatedPerLine(() -> decodeWithLineDecoder(bytes, true), lineCount));
+    }
+
+    // The checks ClientHandler.run() used to make, plus the log and broadcast strings
+    private static int decodeWithReader(byte[] bytes, boolean materialize) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            new ByteArrayInputStream(bytes), StandardCharsets.UTF_8));
+        int kept = 0;
+        String message;
+        while ((message = in.readLine()) != null) {
+            if (message.trim().isEmpty() || message.length() > 500) continue;
+            if (message.contains("joined the chat")) kept--;
+            if (message.startsWith("/")) continue;
+            if (materialize) {
+                kept += ("[Client-1] " + message).length() + ("Client: " + message).length();
+            } else {
+                kept++;
+            }
+        }
+        return kept;
+    }
+
+    private static final byte[] JOINED_MARKER = LineDecoder.utf8(" joined the chat");
+    private static final byte[] LOG_PREFIX = LineDecoder.utf8("[Client-1] ");
+    private static final byte[] CHAT_PREFIX = LineDecoder.utf8("Client: ");
+
+    // The checks ClientHandler.run() makes now
+    private static int decodeWithLineDecoder(byte[] bytes, boolean materialize) throws IOException {
+        LineDecoder in = new LineDecoder(new ByteArrayInputStream(bytes));
+        int kept = 0;
+        while (in.next()) {
+            if (in.isBlank() || in.isOverflow() || in.charLength() > 500) continue;
+            if (in.indexOf(JOINED_MARKER) >= 0) kept--;
+            if (in.startsWith((byte) '/')) continue;
+            if (materialize) {
+                kept += in.toString(LOG_PREFIX).length() + in.toString(CHAT_PREFIX).length();
+            } else {
+                kept++;
+            }
+        }
+        in.release();
+        return kept;
+    }
+
+    // Results are stored here so the JIT can't drop the work being measured
+    private static volatile int sink;
+
+    private interface DecodeRun {
+        int run() throws IOException;
+    }
+
+    private static double allocatedPerLine(DecodeRun run, int lineCount) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+
+        long before = threads.getThreadAllocatedBytes(id);
+        sink = run.run();
+        long after = threads.getThreadAllocatedBytes(id);
+        return (double) (after - before) / lineCount;
+    }
+
+    private static void startReader(Transport.Connection connection, String name, int clientCount, long expected,
+                                    CountDownLatch welcomed, CountDownLatch delivered,
+                                    AtomicLong deliveredLines, AtomicLong orderViolations) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+        Thread reader = new Thread(() -> {
+            // Last message number seen from each sender; each must arrive in send order
+            int[] lastSeen = new int[clientCount];
+            Arrays.fill(lastSeen, -1);
+            long received = 0;
+            boolean isWelcomed = false;
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!isWelcomed && line.startsWith("SERVER: Welcome")) {
+                        isWelcomed = true;
+                        welcomed.countDown();
+                    } else if (line.startsWith("Client: bench-")) {
+                        int sender = Integer.parseInt(line.substring(14, line.indexOf(':', 14)));
+                        int number = Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+                        if (number != lastSeen[sender] + 1) {
+                            orderViolations.incrementAndGet();
+                        }
+                        lastSeen[sender] = number;
+
+                        deliveredLines.incrementAndGet();
+                        if (++received == expected) {
+                            delivered.countDown();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Connection closed by shutdown
+            }
+        });
+        reader.setName(name);
+        reader.setDaemon(true);
+        reader.start();
+
+        if (expected == 0) {
+            delivered.countDown();
+        }
+    }
+
+    private static long totalCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadCpuTimeSupported()) return -1;
+
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            long time = threads.getThreadCpuTime(id);
+            if (time > 0) total += time;
+        }
+        return total;
+    }
+
+    /**
+     * Bytes allocated so far by live threads, summed by name prefix
+     * (ClientHandler, ClientWriter, BenchReader, ...). Null if the JVM
+     * doesn't support per-thread allocation counters.
+     */
+    private static Map<String, Long> allocatedByThreadGroup() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return null;
+
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+        Thread[] live = new Thread[Thread.activeCount() * 2];
+        int count = Thread.enumerate(live);
+
+        Map<String, Long> groups = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            long bytes = hotspot.getThreadAllocatedBytes(live[i].getId());
+            if (bytes <= 0) continue;
+
+            String name = live[i].getName();
+            int dash = name.indexOf('-');
+            groups.merge(dash > 0 ? name.substring(0, dash) : "other", bytes, Long::sum);
+        }
+        return groups;
+    }
+}
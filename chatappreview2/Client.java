@@ -7,22 +7,44 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class Client extends JFrame {
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 1234;
+    private static final int ATTACHMENT_PORT = 1235;
+    private static final int TRANSFER_CHUNK = 256 * 1024;
+    private static final long UPLOAD_TOKEN_WAIT_SECONDS = 10;
     
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
     private String username;
     
+    // Attachments announced in the chat, id -> file name
+    private final Map<String, String> sharedFiles = new ConcurrentHashMap<>();
+    
+    // Upload tokens answered by the server to our /upload requests
+    private final BlockingQueue<String> uploadTokens = new LinkedBlockingQueue<>();
+    
     // GUI Components
     private JTextArea chatArea;
     private JTextField messageField;
     private JButton sendButton;
+    private JButton attachButton;
     private JScrollPane scrollPane;
     private JLabel statusLabel;
     private JPanel headerPanel;
@@ -47,7 +69,7 @@ public class Client extends JFrame {
         
         // Set modern look and feel
         try {
-            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeel());
+            UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -135,6 +157,13 @@ public class Client extends JFrame {
             }
         });
         
+        attachButton = new JButton("Attach");
+        attachButton.setFont(new Font("Arial", Font.PLAIN, 14));
+        attachButton.setBorder(BorderFactory.createEmptyBorder(8, 12, 8, 12));
+        attachButton.setFocusPainted(false);
+        attachButton.setCursor(new Cursor(Cursor.HAND_CURSOR));
+        attachButton.addActionListener(e -> attachFile());
+        
         // Add action listeners
         ActionListener sendAction = e -> sendMessage();
         sendButton.addActionListener(sendAction);
@@ -148,8 +177,13 @@ public class Client extends JFrame {
             }
         });
         
+        JPanel buttonPanel = new JPanel(new BorderLayout(5, 0));
+        buttonPanel.setBackground(BACKGROUND_COLOR);
+        buttonPanel.add(attachButton, BorderLayout.WEST);
+        buttonPanel.add(sendButton, BorderLayout.EAST);
+        
         inputPanel.add(messageField, BorderLayout.CENTER);
-        inputPanel.add(sendButton, BorderLayout.EAST);
+        inputPanel.add(buttonPanel, BorderLayout.EAST);
         
         return inputPanel;
     }
@@ -173,8 +207,8 @@ public class Client extends JFrame {
             
             // Connect to server
             socket = new Socket(SERVER_HOST, SERVER_PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
             
             // Send username to server
             out.println(username + " joined the chat");
@@ -206,12 +240,21 @@ public class Client extends JFrame {
             try {
                 String message;
                 while ((message = in.readLine()) != null) {
+                    if (message.startsWith("UPLOAD: ")) {
+                        // Consumed by the uploader thread, not shown in the chat
+                        uploadTokens.offer(message.substring("UPLOAD: ".length()).trim());
+                        continue;
+                    }
                     final String finalMessage = message;
                     SwingUtilities.invokeLater(() -> {
                         if (finalMessage.startsWith("Client: " + username + ":")) {
                             // Don't display our own messages again
                             return;
                         }
+                        if (finalMessage.startsWith("ATTACHMENT: ")) {
+                            showAttachment(finalMessage);
+                            return;
+                        }
                         appendMessage(finalMessage, "SERVER");
                     });
                 }
@@ -231,6 +274,12 @@ public class Client extends JFrame {
     
     private void sendMessage() {
         String message = messageField.getText().trim();
+        if (message.startsWith("/download ")) {
+            downloadAttachment(message.substring("/download ".length()).trim());
+            messageField.setText("");
+            return;
+        }
+        
         if (!message.isEmpty() && out != null) {
             // Send message to server
             out.println(username + ": " + message);
@@ -244,6 +293,203 @@ public class Client extends JFrame {
         }
     }
     
+    // "ATTACHMENT: <id> <size> <filename> <sender>"
+    private void showAttachment(String announcement) {
+        String[] fields = announcement.split(" ", 5);
+        if (fields.length < 5) {
+            appendMessage(announcement, "SERVER");
+            return;
+        }
+        
+        sharedFiles.put(fields[1], fields[3]);
+        appendMessage(fields[4] + " shared " + fields[3] + " (" + fields[2] + " bytes). " +
+                      "Type /download " + fields[1] + " to save it.", "SERVER");
+    }
+    
+    private void attachFile() {
+        if (out == null) return;
+        
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        Path file = chooser.getSelectedFile().toPath();
+        String fileName = file.getFileName().toString();
+        appendMessage("Uploading " + fileName + "...", "SYSTEM");
+        
+        // Transfers run off the EDT and off the chat connection
+        Thread uploader = new Thread(() -> {
+            try {
+                String id = uploadAttachment(file);
+                out.println("/attach " + id + " " + fileName);
+                appendMessage("You shared " + fileName, "USER");
+            } catch (IOException e) {
+                appendMessage("Upload failed: " + e.getMessage(), "SYSTEM");
+            }
+        });
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+    
+    private String uploadAttachment(Path file) throws IOException {
+        String token = requestUploadToken();
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+             SocketChannel channel = SocketChannel.open(new InetSocketAddress(SERVER_HOST, ATTACHMENT_PORT))) {
+            long size = source.size();
+            writeLine(channel, "PUT " + size + " " + token);
+            
+            // The server answers before the body so a refusal isn't lost in a reset
+            String ready = readLine(channel);
+            if (!ready.equals("READY")) {
+                throw new IOException(ready);
+            }
+            
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), channel);
+            }
+            
+            String reply = readLine(channel);
+            if (!reply.startsWith("OK ")) {
+                throw new IOException(reply);
+            }
+            return reply.substring(3).trim();
+        }
+    }
+    
+    // The attachment port only takes uploads from connected chat members.
+    // One request at a time, and a token that arrived after an earlier
+    // request gave up is dropped, so each upload gets the answer to its own request.
+    private synchronized String requestUploadToken() throws IOException {
+        uploadTokens.clear();
+        out.println("/upload");
+        try {
+            String token = uploadTokens.poll(UPLOAD_TOKEN_WAIT_SECONDS, TimeUnit.SECONDS);
+            if (token == null) {
+                throw new IOException("Server did not grant an upload token");
+            }
+            return token;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an upload token");
+        }
+    }
+    
+    private void downloadAttachment(String id) {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File(sharedFiles.getOrDefault(id, id)));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        Path target = chooser.getSelectedFile().toPath();
+        appendMessage("Downloading " + target.getFileName() + "...", "SYSTEM");
+        
+        Thread downloader = new Thread(() -> {
+            try {
+                fetchAttachment(id, target);
+                appendMessage("Saved " + target, "SYSTEM");
+            } catch (IOException e) {
+                // Resumes when the partial file is still usable, starts over otherwise
+                appendMessage("Download failed: " + e.getMessage() +
+                              ". Run /download " + id + " again to retry.", "SYSTEM");
+            }
+        });
+        downloader.setDaemon(true);
+        downloader.start();
+    }
+    
+    /**
+     * Downloads into "<id>.part" next to the target and renames it once its
+     * SHA-256 matches the id. If a partial file for the same id is already
+     * there, the request starts from its length. A partial file the server
+     * cannot resume from, or one that fails the check, is deleted so the
+     * next attempt starts over.
+     */
+    private void fetchAttachment(String id, Path target) throws IOException {
+        Path partial = target.resolveSibling(id + ".part");
+        long offset = Files.exists(partial) ? Files.size(partial) : 0;
+        
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(SERVER_HOST, ATTACHMENT_PORT));
+             FileChannel file = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            writeLine(channel, "GET " + id + " " + offset);
+            
+            String reply = readLine(channel);
+            if (reply.startsWith("ERR Offset")) {
+                Files.deleteIfExists(partial);
+            }
+            if (!reply.startsWith("OK ")) {
+                throw new IOException(reply);
+            }
+            
+            long end = offset + Long.parseLong(reply.substring(3).trim());
+            long position = offset;
+            while (position < end) {
+                long received = file.transferFrom(channel, position, Math.min(TRANSFER_CHUNK, end - position));
+                if (received == 0) {
+                    throw new EOFException("Connection closed at " + position + " of " + end + " bytes");
+                }
+                position += received;
+            }
+        }
+        
+        // The id is the content hash, so a bad resume can't pass as the file
+        if (!id.equals(sha256(partial))) {
+            Files.deleteIfExists(partial);
+            throw new IOException("Downloaded file does not match attachment " + id);
+        }
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    private static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 not available", e);
+        }
+        
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(TRANSFER_CHUNK);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+    
+    private static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    // Byte at a time so nothing past the header is consumed from the channel
+    private static String readLine(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+            if (one.get(0) == '\n') {
+                return line.toString(StandardCharsets.UTF_8).trim();
+            }
+            line.write(one.get(0));
+        }
+    }
+    
     private void appendMessage(String message, String type) {
         SwingUtilities.invokeLater(() -> {
             SimpleDateFormat sdf = new SimpleDateFormat("HH:mm");
@@ -0,0 +1,82 @@
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Hands one message to every recipient in a collection.
+ *
+ * Below the parallel threshold the calling thread walks the recipients
+ * itself. Above it the recipients are snapshotted into an array, split into
+ * shards and delivered on a work-stealing ForkJoinPool. deliver() returns
+ * only once every recipient has been handed the message, so two calls from
+ * the same sender reach each recipient in call order.
+ */
+class Fanout {
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+    private final int shardSize;
+
+    Fanout(int parallelThreshold, int shardSize, int parallelism) {
+        this.parallelThreshold = parallelThreshold;
+        this.shardSize = Math.max(1, shardSize);
+        this.pool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("Fanout-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    // With a single worker there is nothing to steal, so sharding is pure overhead
+    boolean isParallel(int recipientCount) {
+        return pool.getParallelism() > 1 && recipientCount >= parallelThreshold;
+    }
+
+    <T> void deliver(Collection<T> recipients, Consumer<? super T> action) {
+        if (!isParallel(recipients.size())) {
+            for (T recipient : recipients) {
+                action.accept(recipient);
+            }
+            return;
+        }
+
+        Object[] snapshot = recipients.toArray();
+        pool.invoke(new ShardTask<T>(snapshot, 0, snapshot.length, shardSize, action));
+    }
+
+    private static class ShardTask<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Object[] recipients;
+        private final int from;
+        private final int to;
+        private final int shardSize;
+        private final Consumer<? super T> action;
+
+        ShardTask(Object[] recipients, int from, int to, int shardSize, Consumer<? super T> action) {
+            this.recipients = recipients;
+            this.from = from;
+            this.to = to;
+            this.shardSize = shardSize;
+            this.action = action;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void compute() {
+            if (to - from <= shardSize) {
+                for (int i = from; i < to; i++) {
+                    action.accept((T) recipients[i]);
+                }
+                return;
+            }
+
+            // Split in half; idle workers steal the other half
+            int middle = (from + to) >>> 1;
+            invokeAll(new ShardTask<T>(recipients, from, middle, shardSize, action),
+                      new ShardTask<T>(recipients, middle, to, shardSize, action));
+        }
+    }
+}
@@ -0,0 +1,287 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Newline-delimited UTF-8 line reader for the chat protocol.
+ *
+ * Bytes are read straight into a pooled buffer and each line is exposed as
+ * a range of that buffer. Emptiness, length, prefix and substring checks run
+ * on the raw bytes, and a String is only built when the caller asks for one.
+ * Reading a line allocates nothing; release() hands the buffers back to the
+ * pool when the connection ends.
+ *
+ * Lines end at "\n", "\r\n" or a lone "\r", as with BufferedReader.readLine().
+ * A line that does not fit in the buffer is skipped up to its terminator and
+ * reported through isOverflow().
+ */
+class LineDecoder implements Closeable {
+    static final int BUFFER_SIZE = 8192;
+    private static final BufferPool pool = new BufferPool(BUFFER_SIZE, 1024);
+
+    private final InputStream in;
+    private byte[] buffer = pool.acquire();
+    private byte[] scratch;             // for prefix + line materialization, taken on first use
+
+    private int position;               // start of unread data
+    private int limit;                  // end of valid data
+    private int lineStart;
+    private int lineEnd;                // exclusive, without the line terminator
+    private boolean overflow;
+    private boolean eof;
+    private boolean skipLineFeed;       // last line ended in '\r'; a '\n' right after it belongs to it
+
+    LineDecoder(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Advances to the next line. Returns false once the stream is exhausted;
+     * a final line without a terminator is still returned.
+     */
+    boolean next() throws IOException {
+        overflow = false;
+
+        while (true) {
+            if (skipLineFeed && position < limit) {
+                skipLineFeed = false;
+                if (buffer[position] == '\n') {
+                    position++;
+                }
+            }
+
+            int terminator = indexOfTerminator(position, limit);
+            if (terminator >= 0) {
+                setLine(position, terminator);
+                position = terminator + 1;
+                skipLineFeed = buffer[terminator] == '\r';
+                return true;
+            }
+
+            if (eof) {
+                if (position < limit) {
+                    setLine(position, limit);
+                    position = limit;
+                    return true;
+                }
+                return false;
+            }
+
+            if (position > 0) {
+                // Slide the partial line to the front to make room
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            } else if (limit == buffer.length) {
+                // Line is longer than the whole buffer: drop it up to its terminator
+                skipOverlongLine();
+                return true;
+            }
+
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+    }
+
+    boolean isOverflow() {
+        return overflow;
+    }
+
+    /** True if the line is empty or only whitespace/control bytes, like String.trim().isEmpty(). */
+    boolean isBlank() {
+        if (overflow) return false;
+        for (int i = lineStart; i < lineEnd; i++) {
+            if ((buffer[i] & 0xFF) > ' ') return false;
+        }
+        return true;
+    }
+
+    /**
+     * Length of the line in UTF-16 chars, i.e. what toString().length()
+     * would return, counted without decoding. Malformed input is counted the
+     * way the decoder replaces it: one U+FFFD for each stray byte and for
+     * each cut-off sequence, so bad bytes cannot slip past a length limit.
+     */
+    int charLength() {
+        int chars = 0;
+        int i = lineStart;
+        while (i < lineEnd) {
+            int lead = buffer[i] & 0xFF;
+            int expected = lead < 0x80 ? 1 : lead < 0xC2 ? 0 : lead < 0xE0 ? 2 : lead < 0xF0 ? 3 : lead < 0xF5 ? 4 : 0;
+            if (expected == 0) {
+                // Stray continuation byte or a byte that can never lead
+                chars++;
+                i++;
+                continue;
+            }
+
+            int valid = 1;
+            while (valid < expected && i + valid < lineEnd && isContinuation(lead, valid, buffer[i + valid] & 0xFF)) {
+                valid++;
+            }
+            // A complete 4-byte sequence is a surrogate pair; anything else is one char
+            chars += valid == 4 ? 2 : 1;
+            i += valid;
+        }
+        return chars;
+    }
+
+    boolean startsWith(byte first) {
+        return lineEnd > lineStart && buffer[lineStart] == first;
+    }
+
+    /** Byte offset of needle within the line, or -1. */
+    int indexOf(byte[] needle) {
+        int last = lineEnd - needle.length;
+        outer:
+        for (int i = lineStart; i <= last; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (buffer[i + j] != needle[j]) continue outer;
+            }
+            return i - lineStart;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+    }
+
+    /** Bytes [from, to) of the line as a String. */
+    String substring(int from, int to) {
+        return new String(buffer, lineStart + from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The line with an encoded prefix in front, built as a single String
+     * without an intermediate copy of the line.
+     */
+    String toString(byte[] prefix) {
+        int length = lineEnd - lineStart;
+        if (prefix.length + length > BUFFER_SIZE) {
+            return new String(prefix, StandardCharsets.UTF_8) + this;
+        }
+
+        if (scratch == null) {
+            scratch = pool.acquire();
+        }
+        System.arraycopy(prefix, 0, scratch, 0, prefix.length);
+        System.arraycopy(buffer, lineStart, scratch, prefix.length, length);
+        return new String(scratch, 0, prefix.length + length, StandardCharsets.UTF_8);
+    }
+
+    /** Returns the buffers to the pool. The decoder must not be used afterwards. */
+    void release() {
+        if (buffer != null) {
+            pool.release(buffer);
+            buffer = null;
+        }
+        if (scratch != null) {
+            pool.release(scratch);
+            scratch = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        in.close();
+    }
+
+    static byte[] utf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void setLine(int start, int end) {
+        lineStart = start;
+        lineEnd = end;
+    }
+
+    private void skipOverlongLine() throws IOException {
+        overflow = true;
+        setLine(0, 0);
+
+        while (true) {
+            int terminator = indexOfTerminator(0, limit);
+            if (terminator >= 0) {
+                position = terminator + 1;
+                skipLineFeed = buffer[terminator] == '\r';
+                return;
+            }
+
+            limit = in.read(buffer, 0, buffer.length);
+            if (limit < 0) {
+                eof = true;
+                limit = 0;
+                position = 0;
+                return;
+            }
+        }
+    }
+
+    private int indexOfTerminator(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\n' || buffer[i] == '\r') return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Whether b can be byte index of a sequence starting with lead. The
+     * second byte's range also rules out overlong forms and code points
+     * above U+10FFFF, as the decoder does. An encoded surrogate (ED A0..BF)
+     * is left to pass: the decoder swaps the whole sequence for one U+FFFD.
+     */
+    private static boolean isContinuation(int lead, int index, int b) {
+        if (index == 1) {
+            switch (lead) {
+                case 0xE0: return b >= 0xA0 && b <= 0xBF;
+                case 0xF0: return b >= 0x90 && b <= 0xBF;
+                case 0xF4: return b >= 0x80 && b <= 0x8F;
+                default:   break;
+            }
+        }
+        return (b & 0xC0) == 0x80;
+    }
+
+    /**
+     * Bounded free list of equally sized byte arrays shared by all decoders,
+     * so connection churn doesn't allocate a fresh buffer per client.
+     */
+    static class BufferPool {
+        private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger(0);
+        private final int bufferSize;
+        private final int maxPooled;
+
+        BufferPool(int bufferSize, int maxPooled) {
+            this.bufferSize = bufferSize;
+            this.maxPooled = maxPooled;
+        }
+
+        byte[] acquire() {
+            byte[] buffer = free.poll();
+            if (buffer == null) {
+                return new byte[bufferSize];
+            }
+            pooled.decrementAndGet();
+            return buffer;
+        }
+
+        void release(byte[] buffer) {
+            if (buffer.length != bufferSize) return;
+
+            if (pooled.incrementAndGet() <= maxPooled) {
+                free.offer(buffer);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.*;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process transport. Each connection is a pair of lock-free pipes, one
+ * per direction, so the server pipeline can be driven by simulated clients
+ * without any kernel TCP cost in the measurements.
+ *
+ * Clients obtain their end with connect(); the server end is handed out by
+ * accept() exactly like a socket transport would.
+ */
+class LoopbackTransport implements Transport {
+    // Placed on the pending queue by close() to wake every blocked acceptor
+    private static final LoopbackConnection CLOSED = new LoopbackConnection(null, null, "closed");
+
+    private final LinkedBlockingQueue<LoopbackConnection> pending = new LinkedBlockingQueue<>();
+    private final AtomicInteger connectionCounter = new AtomicInteger(0);
+    private volatile boolean closed;
+
+    /**
+     * Opens a new connection and returns the client end. The server end is
+     * queued for the next accept().
+     */
+    Connection connect() throws IOException {
+        if (closed) {
+            throw new SocketException("Transport closed");
+        }
+
+        LoopbackPipe toServer = new LoopbackPipe();
+        LoopbackPipe toClient = new LoopbackPipe();
+        String address = "loopback:" + connectionCounter.incrementAndGet();
+
+        pending.add(new LoopbackConnection(toServer, toClient, address));
+        return new LoopbackConnection(toClient, toServer, "loopback:server");
+    }
+
+    @Override
+    public Connection accept() throws IOException {
+        try {
+            LoopbackConnection connection = pending.take();
+            if (connection == CLOSED) {
+                // Leave the marker in place for the other acceptors
+                pending.add(CLOSED);
+                throw new SocketException("Transport closed");
+            }
+            return connection;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while accepting");
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public String describe() {
+        return "in-memory loopback";
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        pending.add(CLOSED);
+    }
+
+    private static class LoopbackConnection implements Connection {
+        private final LoopbackPipe inbound;
+        private final LoopbackPipe outbound;
+        private final String address;
+        private final InputStream in;
+        private final OutputStream out;
+
+        LoopbackConnection(LoopbackPipe inbound, LoopbackPipe outbound, String address) {
+            this.inbound = inbound;
+            this.outbound = outbound;
+            this.address = address;
+            this.in = inbound != null ? new PipeInputStream(inbound) : null;
+            this.out = outbound != null ? new PipeOutputStream(outbound) : null;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return inbound.isClosed();
+        }
+
+        // Closing either end closes both directions, like a socket
+        @Override
+        public void close() {
+            inbound.close();
+            outbound.close();
+        }
+    }
+
+    /**
+     * Single-reader, multi-writer byte pipe over a ConcurrentLinkedQueue of
+     * chunks. Writers never block; the reader parks only when the queue is
+     * empty and is unparked by the next write or by close().
+     */
+    private static class LoopbackPipe {
+        private final ConcurrentLinkedQueue<byte[]> chunks = new ConcurrentLinkedQueue<>();
+        private volatile Thread reader;
+        private volatile boolean closed;
+
+        void write(byte[] buffer, int offset, int length) throws IOException {
+            if (closed) {
+                throw new SocketException("Connection closed");
+            }
+            if (length == 0) return;
+
+            // Callers reuse their buffers, so the chunk has to be copied
+            chunks.offer(Arrays.copyOfRange(buffer, offset, offset + length));
+            Thread waiting = reader;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        }
+
+        /** Next chunk, or null once the pipe is closed and drained. */
+        byte[] take() throws InterruptedIOException {
+            byte[] chunk = chunks.poll();
+            if (chunk != null) {
+                return chunk;
+            }
+
+            // Publish ourselves before re-checking so a concurrent write
+            // either lands in the queue we poll or sees us and unparks
+            reader = Thread.currentThread();
+            try {
+                while ((chunk = chunks.poll()) == null) {
+                    if (closed) {
+                        return chunks.poll();
+                    }
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedIOException("Interrupted while reading");
+                    }
+                }
+                return chunk;
+            } finally {
+                reader = null;
+            }
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        void close() {
+            closed = true;
+            Thread waiting = reader;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        }
+    }
+
+    private static class PipeInputStream extends InputStream {
+        private final LoopbackPipe pipe;
+        private byte[] current;
+        private int position;
+
+        PipeInputStream(LoopbackPipe pipe) {
+            this.pipe = pipe;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            return current[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!fill()) return -1;
+
+            int count = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return current != null ? current.length - position : 0;
+        }
+
+        @Override
+        public void close() {
+            pipe.close();
+        }
+
+        private boolean fill() throws IOException {
+            if (current != null && position < current.length) {
+                return true;
+            }
+            current = pipe.take();
+            position = 0;
+            return current != null;
+        }
+    }
+
+    private static class PipeOutputStream extends OutputStream {
+        private final LoopbackPipe pipe;
+
+        PipeOutputStream(LoopbackPipe pipe) {
+            this.pipe = pipe;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            pipe.write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            pipe.write(buffer, offset, length);
+        }
+
+        @Override
+        public void close() {
+            pipe.close();
+        }
+    }
+}
@@ -1,22 +1,69 @@
 import java.io.*;
-import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.text.SimpleDateFormat;
 
 public class Server {
     private static final int PORT = 1234;
-    private static final int MAX_CLIENTS = 50;
+    private static final int MAX_CLIENTS = Integer.getInteger("chat.maxClients", 50);
+    
+    // Connection intake settings (override with -Dchat.acceptBacklog=N etc.)
+    private static final int ACCEPT_BACKLOG = Integer.getInteger("chat.acceptBacklog", 1024);
+    // accept() on one listener is serialized by the socket's accept lock and drains a
+    // single kernel queue, so extra acceptors only add lock handoffs; setup runs in parallel
+    private static final int ACCEPTOR_THREADS = Integer.getInteger("chat.acceptors", 1);
+    private static final int INITIALIZER_THREADS = Integer.getInteger("chat.initializers", 4);
+    
+    // Outbound lane settings
+    private static final int MAX_CHAT_BACKLOG = 10000;      // queued chat lines per client before dropping oldest
+    private static final long SHUTDOWN_DRAIN_MILLIS = 500;  // time allowed to flush control lines on disconnect
+    
+    // Broadcast fan-out settings; see ChatBenchmark fanout for choosing the threshold
+    private static final int PARALLEL_FANOUT_THRESHOLD = Integer.getInteger("chat.parallelFanoutThreshold", 8192);
+    private static final int FANOUT_SHARD_SIZE = Integer.getInteger("chat.fanoutShardSize", 1024);
+    
+    // Attachment transfer settings
+    private static final int ATTACHMENT_PORT = 1235;
+    private static final String ATTACHMENT_DIR = System.getProperty("chat.attachmentDir", "attachments");
+    private static final int ATTACHMENT_TRANSFERS = Integer.getInteger("chat.attachmentTransfers", 8);
+    private static final long MAX_ATTACHMENT_BYTES = Long.getLong("chat.maxAttachmentBytes", 100L * 1024 * 1024);
+    private static final long ATTACHMENT_STORE_BYTES = Long.getLong("chat.attachmentStoreBytes", 1024L * 1024 * 1024);
+    private static final long ATTACHMENT_BYTES_PER_SECOND =               // shared by all transfers
+        Long.getLong("chat.attachmentBytesPerSecond", 8L * 1024 * 1024);
+    private static final long ATTACHMENT_TIMEOUT_MILLIS = Long.getLong("chat.attachmentTimeoutMillis", 30_000);
+    private static final int UPLOADS_PER_CLIENT = Integer.getInteger("chat.uploadsPerClient", 20);
+    
+    // Protocol fragments matched against raw input bytes
+    private static final byte[] JOINED_MARKER = LineDecoder.utf8(" joined the chat");
+    private static final byte[] CHAT_PREFIX = LineDecoder.utf8("Client: ");
     
     // Thread-safe collections
     private static final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
-    private static final Set<PrintWriter> clientWriters = Collections.synchronizedSet(new HashSet<>());
     private static final AtomicInteger clientCounter = new AtomicInteger(0);
+    private static final AtomicInteger nextClientId = new AtomicInteger(0);
+    
+    // Connection intake
+    private static volatile Transport transport;
+    private static ExecutorService initializers;
+    private static volatile AttachmentServer attachments;
     
     // Server statistics
     private static volatile boolean serverRunning = true;
     private static final Date startTime = new Date();
+    private static final AcceptStats acceptStats = new AcceptStats();
+    
+    // Broadcast delivery, parallel above PARALLEL_FANOUT_THRESHOLD recipients
+    private static final Fanout fanout = new Fanout(PARALLEL_FANOUT_THRESHOLD, FANOUT_SHARD_SIZE,
+                                                    Runtime.getRuntime().availableProcessors());
     
     public static void main(String[] args) {
         System.out.println("=================================");
@@ -24,133 +71,276 @@ public class Server {
         System.out.println("=================================");
         System.out.println("Server started on port: " + PORT);
         System.out.println("Max clients allowed: " + MAX_CLIENTS);
+        System.out.println("Acceptors: " + ACCEPTOR_THREADS + ", initializers: " + INITIALIZER_THREADS +
+                         ", backlog: " + ACCEPT_BACKLOG);
         System.out.println("Start time: " + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(startTime));
         System.out.println("=================================");
         
         // Add shutdown hook
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("\nServer shutting down gracefully...");
-            serverRunning = false;
-            broadcastSystemMessage("Server is shutting down...");
+        Runtime.getRuntime().addShutdownHook(new Thread(Server::shutdown));
+        
+        startAttachmentServer();
+        
+        try (Transport listener = new SocketTransport(PORT, ACCEPT_BACKLOG)) {
+            System.out.println("Listening on " + listener.describe());
+            serve(listener);
+        } catch (IOException e) {
+            System.err.println("Server startup error: " + e.getMessage());
+            e.printStackTrace();
+        }
+        
+        System.out.println("Server stopped.");
+    }
+    
+    /**
+     * Runs connection intake on the given transport until shutdown() closes
+     * it. main() passes a SocketTransport; benchmarks pass a LoopbackTransport
+     * to exercise the same pipeline without the network stack.
+     */
+    static void serve(Transport listener) {
+        transport = listener;
+        initializers = Executors.newFixedThreadPool(INITIALIZER_THREADS, task -> {
+            Thread thread = new Thread(task);
+            thread.setName("ConnectionInitializer-" + thread.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        // Acceptors block in accept() with no timeout; closing the transport
+        // from shutdown() is what wakes them up.
+        List<Thread> acceptors = new ArrayList<>();
+        for (int i = 1; i <= ACCEPTOR_THREADS; i++) {
+            Thread acceptor = new Thread(() -> acceptLoop(listener));
+            acceptor.setName("Acceptor-" + i);
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+        
+        try {
+            for (Thread acceptor : acceptors) {
+                acceptor.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // File sharing is optional; the chat keeps running if the port or directory is unavailable
+    private static void startAttachmentServer() {
+        try {
+            AttachmentStore store = new AttachmentStore(Paths.get(ATTACHMENT_DIR), ATTACHMENT_STORE_BYTES);
+            attachments = new AttachmentServer(ATTACHMENT_PORT, store, ATTACHMENT_TRANSFERS, MAX_ATTACHMENT_BYTES,
+                                               ATTACHMENT_BYTES_PER_SECOND, ATTACHMENT_TIMEOUT_MILLIS);
             
-            // Close all client connections
-            synchronized (clients) {
-                for (ClientHandler client : clients.values()) {
-                    client.disconnect();
-                }
+            Thread acceptor = new Thread(attachments);
+            acceptor.setName("AttachmentAcceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            System.out.println("Attachments on port " + ATTACHMENT_PORT + ", stored in " + ATTACHMENT_DIR);
+        } catch (IOException e) {
+            System.err.println("File sharing disabled: " + e.getMessage());
+        }
+    }
+    
+    static void shutdown() {
+        System.out.println("\nServer shutting down gracefully...");
+        serverRunning = false;
+        broadcastSystemMessage("Server is shutting down...");
+        
+        // Close all client connections. Every outbox is closed first and the
+        // writers share one drain deadline, so slow sockets cost one
+        // SHUTDOWN_DRAIN_MILLIS in total rather than one per client.
+        synchronized (clients) {
+            long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_DRAIN_MILLIS);
+            for (ClientHandler client : clients.values()) {
+                client.outbox.close();
+            }
+            for (ClientHandler client : clients.values()) {
+                client.outbox.awaitDrained(drainDeadline);
             }
-        }));
+            for (ClientHandler client : clients.values()) {
+                client.disconnect();
+            }
+        }
         
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            serverSocket.setSoTimeout(1000); // 1 second timeout for accept()
-            
-            while (serverRunning) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    
-                    // Check client limit
-                    if (clientCounter.get() >= MAX_CLIENTS) {
-                        System.out.println("Client limit reached. Rejecting connection from: " + 
-                                         clientSocket.getInetAddress());
-                        PrintWriter rejectWriter = new PrintWriter(clientSocket.getOutputStream(), true);
-                        rejectWriter.println("SERVER: Maximum client limit reached. Please try again later.");
-                        clientSocket.close();
-                        continue;
-                    }
-                    
-                    String clientId = "Client-" + clientCounter.incrementAndGet();
-                    System.out.println("New client connected: " + clientSocket.getInetAddress() + 
-                                     " [ID: " + clientId + "]");
-                    System.out.println("Total clients: " + clientCounter.get());
-                    
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, clientId);
-                    clients.put(clientId, clientHandler);
-                    
-                    Thread clientThread = new Thread(clientHandler);
-                    clientThread.setName("ClientHandler-" + clientId);
-                    clientThread.start();
-                    
-                } catch (SocketTimeoutException e) {
-                    // Timeout is normal, continue loop to check serverRunning
-                    continue;
-                } catch (IOException e) {
-                    if (serverRunning) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
-                    }
+        // Unblock the acceptors and stop intake
+        try {
+            if (transport != null) {
+                transport.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing transport: " + e.getMessage());
+        }
+        if (initializers != null) {
+            initializers.shutdownNow();
+        }
+        if (attachments != null) {
+            attachments.close();
+        }
+    }
+    
+    /**
+     * Acceptor loop. Does nothing but take connections off the kernel backlog
+     * and hand them to the initializer pool, so a reconnect storm drains as
+     * fast as accept() can return.
+     */
+    private static void acceptLoop(Transport listener) {
+        while (serverRunning) {
+            Transport.Connection connection;
+            try {
+                connection = listener.accept();
+            } catch (IOException e) {
+                if (serverRunning && !listener.isClosed()) {
+                    System.err.println("Error accepting client connection: " + e.getMessage());
                 }
+                continue;
             }
             
-        } catch (IOException e) {
-            System.err.println("Server startup error: " + e.getMessage());
-            e.printStackTrace();
+            long acceptedAt = System.nanoTime();
+            acceptStats.recordAccept();
+            try {
+                initializers.execute(() -> initializeConnection(connection, acceptedAt));
+            } catch (RejectedExecutionException e) {
+                closeQuietly(connection);
+            }
+        }
+    }
+    
+    /**
+     * Per-connection setup, run on the initializer pool: limit check, logging,
+     * handler construction and thread start.
+     */
+    private static void initializeConnection(Transport.Connection connection, long acceptedAt) {
+        // Check client limit
+        if (!reserveClientSlot()) {
+            System.out.println("Client limit reached. Rejecting connection from: " + 
+                             connection.getRemoteAddress());
+            try {
+                PrintWriter rejectWriter = new PrintWriter(connection.getOutputStream(), true);
+                rejectWriter.println("SERVER: Maximum client limit reached. Please try again later.");
+            } catch (IOException e) {
+                // Client already gone, nothing to tell it
+            }
+            closeQuietly(connection);
+            return;
         }
         
-        System.out.println("Server stopped.");
+        String clientId = "Client-" + nextClientId.incrementAndGet();
+        System.out.println("New client connected: " + connection.getRemoteAddress() + 
+                         " [ID: " + clientId + "]");
+        System.out.println("Total clients: " + clientCounter.get());
+        
+        ClientHandler clientHandler = new ClientHandler(connection, clientId, acceptedAt);
+        clients.put(clientId, clientHandler);
+        
+        Thread clientThread = new Thread(clientHandler);
+        clientThread.setName("ClientHandler-" + clientId);
+        clientThread.start();
+    }
+    
+    // Initializers run in parallel, so the limit check and the increment must be one step
+    private static boolean reserveClientSlot() {
+        while (true) {
+            int current = clientCounter.get();
+            if (current >= MAX_CLIENTS) {
+                return false;
+            }
+            if (clientCounter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+    
+    private static void closeQuietly(Closeable connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Ignore, the connection is being discarded anyway
+        }
     }
     
     private static class ClientHandler implements Runnable {
-        private final Socket socket;
+        private final Transport.Connection connection;
         private final String clientId;
+        private final long acceptedAt;
+        private final byte[] logPrefix;
         private PrintWriter out;
-        private BufferedReader in;
+        private LineDecoder in;
+        private final Outbox outbox = new Outbox();
         private String clientName;
-        private boolean connected;
+        private int uploadTokensIssued;         // reader thread only
+        private volatile boolean connected;
         
-        public ClientHandler(Socket socket, String clientId) {
-            this.socket = socket;
+        public ClientHandler(Transport.Connection connection, String clientId, long acceptedAt) {
+            this.connection = connection;
             this.clientId = clientId;
+            this.acceptedAt = acceptedAt;
+            this.logPrefix = LineDecoder.utf8("[" + clientId + "] ");
             this.connected = true;
         }
         
         @Override
         public void run() {
             try {
-                // Set up streams
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-                clientWriters.add(out);
+                // Set up streams; the protocol is UTF-8 in both directions
+                in = new LineDecoder(connection.getInputStream());
+                out = new PrintWriter(new BufferedWriter(
+                    new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8)));
+                // Time to welcome is taken once the writer has flushed the
+                // first control line, i.e. when the welcome is on the wire
+                outbox.start(out, "ClientWriter-" + clientId,
+                             () -> acceptStats.recordWelcome(System.nanoTime() - acceptedAt));
                 
                 // Send welcome message
-                out.println("SERVER: Welcome to the chat! You are connected as " + clientId);
-                out.println("SERVER: Type your messages and press Enter to send.");
-                out.println("SERVER: Current users online: " + clientCounter.get());
+                sendControl("SERVER: Welcome to the chat! You are connected as " + clientId);
+                sendControl("SERVER: Type your messages and press Enter to send.");
+                sendControl("SERVER: Current users online: " + clientCounter.get());
                 
                 // Notify others about new user
-                broadcastMessage("SERVER: " + clientId + " joined the chat", this);
+                broadcastMessage("SERVER: " + clientId + " joined the chat", this, Lane.CONTROL);
                 
-                String message;
-                while (connected && (message = in.readLine()) != null) {
+                // Checks run on the raw line bytes; Strings are only built for
+                // what actually leaves this loop (broadcasts, commands, logs)
+                while (connected && in.next()) {
                     // Input validation
-                    if (message.trim().isEmpty()) {
+                    if (in.isBlank()) {
                         continue;
                     }
                     
                     // Limit message length
-                    if (message.length() > 500) {
-                        out.println("SERVER: Message too long. Maximum 500 characters allowed.");
+                    if (in.isOverflow() || in.charLength() > 500) {
+                        sendControl("SERVER: Message too long. Maximum 500 characters allowed.");
                         continue;
                     }
                     
                     // Extract client name from first message if it contains "joined"
-                    if (clientName == null && message.contains("joined the chat")) {
-                        clientName = message.substring(0, message.indexOf(" joined the chat"));
-                        System.out.println("Client " + clientId + " identified as: " + clientName);
+                    if (clientName == null) {
+                        int joined = in.indexOf(JOINED_MARKER);
+                        if (joined >= 0) {
+                            clientName = in.substring(0, joined);
+                            System.out.println("Client " + clientId + " identified as: " + clientName);
+                        }
                     }
                     
                     // Process commands
-                    if (message.startsWith("/")) {
-                        handleCommand(message);
+                    if (in.startsWith((byte) '/')) {
+                        handleCommand(in.toString());
                         continue;
                     }
                     
-                    System.out.println("[" + clientId + "] " + message);
-                    broadcastMessage("Client: " + message, this);
+                    System.out.println(in.toString(logPrefix));
+                    broadcastMessage(in.toString(CHAT_PREFIX), this, Lane.CHAT);
                 }
                 
             } catch (IOException e) {
                 System.err.println("Client " + clientId + " connection error: " + e.getMessage());
             } finally {
                 disconnect();
+                
+                // Only this thread reads through the decoder, so only it may recycle the buffers
+                if (in != null) {
+                    in.release();
+                }
             }
         }
         
@@ -160,57 +350,136 @@ public class Server {
             
             switch (cmd) {
                 case "/help":
-                    out.println("SERVER: Available commands:");
-                    out.println("SERVER: /help - Show this help message");
-                    out.println("SERVER: /users - List online users");
-                    out.println("SERVER: /time - Show server time");
-                    out.println("SERVER: /stats - Show server statistics");
+                    sendControl("SERVER: Available commands:");
+                    sendControl("SERVER: /help - Show this help message");
+                    sendControl("SERVER: /users - List online users");
+                    sendControl("SERVER: /time - Show server time");
+                    sendControl("SERVER: /stats - Show server statistics");
+                    sendControl("SERVER: /upload - Get a one-time token for the attachment port");
+                    sendControl("SERVER: /attach <id> <filename> - Share an uploaded file");
                     break;
                     
                 case "/users":
-                    out.println("SERVER: Online users (" + clientCounter.get() + "):");
+                    sendControl("SERVER: Online users (" + clientCounter.get() + "):");
                     synchronized (clients) {
                         for (String id : clients.keySet()) {
-                            out.println("SERVER: - " + id);
+                            sendControl("SERVER: - " + id);
                         }
                     }
                     break;
                     
                 case "/time":
-                    out.println("SERVER: Server time: " + 
+                    sendControl("SERVER: Server time: " + 
                               new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
                     break;
                     
                 case "/stats":
                     long uptime = (System.currentTimeMillis() - startTime.getTime()) / 1000;
-                    out.println("SERVER: Server Statistics:");
-                    out.println("SERVER: - Uptime: " + uptime + " seconds");
-                    out.println("SERVER: - Current users: " + clientCounter.get());
-                    out.println("SERVER: - Start time: " + 
+                    sendControl("SERVER: Server Statistics:");
+                    sendControl("SERVER: - Uptime: " + uptime + " seconds");
+                    sendControl("SERVER: - Current users: " + clientCounter.get());
+                    sendControl("SERVER: - Start time: " + 
                               new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(startTime));
+                    for (String line : acceptStats.summary()) {
+                        sendControl("SERVER: - " + line);
+                    }
+                    break;
+                    
+                case "/upload":
+                    issueUploadToken();
+                    break;
+                    
+                case "/attach":
+                    shareAttachment(parts.length > 1 ? parts[1].trim() : "");
                     break;
                     
                 default:
-                    out.println("SERVER: Unknown command. Type /help for available commands.");
+                    sendControl("SERVER: Unknown command. Type /help for available commands.");
+            }
+        }
+        
+        /**
+         * Uploads are only accepted with a token handed out here, so the
+         * attachment port stores files for connected chat members only.
+         */
+        private void issueUploadToken() {
+            if (attachments == null) {
+                sendControl("SERVER: File sharing is not available on this server.");
+                return;
             }
+            if (uploadTokensIssued >= UPLOADS_PER_CLIENT) {
+                sendControl("SERVER: Upload limit of " + UPLOADS_PER_CLIENT + " files per connection reached.");
+                return;
+            }
+            
+            uploadTokensIssued++;
+            sendControl("UPLOAD: " + attachments.issueUploadToken(clientId));
+        }
+        
+        /**
+         * Announces a file already uploaded to the attachment port. Only the
+         * content id travels through the chat; recipients download out of band.
+         */
+        private void shareAttachment(String arguments) {
+            if (attachments == null) {
+                sendControl("SERVER: File sharing is not available on this server.");
+                return;
+            }
+            
+            String[] fields = arguments.split(" ", 2);
+            if (fields.length < 2 || fields[1].trim().isEmpty()) {
+                sendControl("SERVER: Usage: /attach <id> <filename>");
+                return;
+            }
+            
+            Path file = attachments.getStore().find(fields[0]);
+            if (file == null) {
+                sendControl("SERVER: Unknown attachment. Upload the file before sharing it.");
+                return;
+            }
+            
+            long size;
+            try {
+                size = Files.size(file);
+            } catch (IOException e) {
+                sendControl("SERVER: Attachment could not be read.");
+                return;
+            }
+            
+            // Keep the announcement a single space-separated line
+            String fileName = fields[1].trim().replaceAll("[\\s/\\\\]+", "_");
+            String sharedBy = clientName != null ? clientName : clientId;
+            
+            System.out.println("[" + clientId + "] shared " + fileName + " (" + fields[0] + ")");
+            broadcastMessage("ATTACHMENT: " + fields[0] + " " + size + " " + fileName + " " + sharedBy,
+                             this, Lane.CHAT);
+            sendControl("SERVER: Shared " + fileName + " (" + size + " bytes)");
         }
         
         public void disconnect() {
-            if (!connected) return;
+            // The reader thread and shutdown() can both get here
+            synchronized (this) {
+                if (!connected) return;
+                connected = false;
+            }
             
-            connected = false;
+            // Unused upload tokens die with the chat connection
+            if (attachments != null) {
+                attachments.revokeUploadTokens(clientId);
+            }
+            
+            // Give the writer a moment to flush pending control lines (e.g. shutdown notice)
+            outbox.close(SHUTDOWN_DRAIN_MILLIS);
             
             try {
+                // Closing the connection is what unblocks the reader thread;
+                // it releases its LineDecoder itself on the way out.
+                if (connection != null && !connection.isClosed()) {
+                    connection.close();
+                }
                 if (out != null) {
-                    clientWriters.remove(out);
                     out.close();
                 }
-                if (in != null) {
-                    in.close();
-                }
-                if (socket != null && !socket.isClosed()) {
-                    socket.close();
-                }
             } catch (IOException e) {
                 System.err.println("Error closing client " + clientId + " resources: " + e.getMessage());
             }
@@ -223,43 +492,259 @@ public class Server {
             String departureMessage = clientName != null ? 
                 "SERVER: " + clientName + " left the chat" : 
                 "SERVER: " + clientId + " disconnected";
-            broadcastMessage(departureMessage, this);
+            broadcastMessage(departureMessage, this, Lane.CONTROL);
             
             System.out.println("Client " + clientId + " disconnected. Total clients: " + clientCounter.get());
         }
+        
+        void sendControl(String message) {
+            outbox.offer(message, Lane.CONTROL);
+        }
+        
+        void sendChat(String message) {
+            outbox.offer(message, Lane.CHAT);
+        }
     }
     
-    private static void broadcastMessage(String message, ClientHandler sender) {
-        if (message == null || message.trim().isEmpty()) {
-            return;
+    /**
+     * Connection intake measurements: accepts per second (last full second and
+     * peak) and time from accept() until the writer has flushed the first
+     * welcome line, kept as a ring of the most recent samples for percentiles.
+     */
+    private static class AcceptStats {
+        private static final int SAMPLE_SIZE = 1024;
+        
+        private final long[] welcomeNanos = new long[SAMPLE_SIZE];
+        private int sampleCount;
+        private int nextSample;
+        
+        private long totalAccepted;
+        private long windowStart = System.currentTimeMillis();
+        private int windowCount;
+        private int lastSecondRate;
+        private int peakRate;
+        
+        synchronized void recordAccept() {
+            rollWindow(System.currentTimeMillis());
+            windowCount++;
+            totalAccepted++;
         }
         
-        synchronized (clientWriters) {
-            Iterator<PrintWriter> iterator = clientWriters.iterator();
-            while (iterator.hasNext()) {
-                PrintWriter writer = iterator.next();
-                try {
-                    // Don't send message back to sender
-                    if (sender != null && writer == sender.out) {
-                        continue;
+        synchronized void recordWelcome(long nanos) {
+            welcomeNanos[nextSample] = nanos;
+            nextSample = (nextSample + 1) % SAMPLE_SIZE;
+            sampleCount = Math.min(sampleCount + 1, SAMPLE_SIZE);
+        }
+        
+        synchronized List<String> summary() {
+            // Roll here too, or an idle listener keeps reporting the last burst
+            rollWindow(System.currentTimeMillis());
+            
+            List<String> lines = new ArrayList<>();
+            lines.add("Accepted connections: " + totalAccepted);
+            lines.add("Accept rate: " + lastSecondRate + " conn/s (peak " +
+                      Math.max(peakRate, windowCount) + " conn/s)");
+            
+            if (sampleCount > 0) {
+                long[] sorted = Arrays.copyOf(welcomeNanos, sampleCount);
+                Arrays.sort(sorted);
+                lines.add(String.format("Time to welcome: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                          percentile(sorted, 50), percentile(sorted, 90),
+                          percentile(sorted, 99), sorted[sorted.length - 1] / 1_000_000.0));
+            }
+            return lines;
+        }
+        
+        private void rollWindow(long now) {
+            if (now - windowStart >= 1000) {
+                // A gap longer than one window means the last full second was idle
+                lastSecondRate = now - windowStart < 2000 ? windowCount : 0;
+                peakRate = Math.max(peakRate, windowCount);
+                windowStart = now;
+                windowCount = 0;
+            }
+        }
+        
+        private static double percentile(long[] sorted, int pct) {
+            int index = (int) Math.ceil(pct / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+    
+    // Outbound priority classes. CONTROL covers command replies, join/leave and
+    // system notices; CHAT covers relayed user messages.
+    private enum Lane { CONTROL, CHAT }
+    
+    /**
+     * Per-connection outbound queue with two priority lanes, drained by a
+     * dedicated writer thread. The writer always takes a pending control line
+     * before the next chat line, so a control line waits for at most the one
+     * chat line currently being written no matter how deep the chat backlog is.
+     * The chat lane is capped at MAX_CHAT_BACKLOG lines; the oldest line is
+     * dropped when a slow reader falls further behind.
+     */
+    private static class Outbox implements Runnable {
+        private final ArrayDeque<String> controlLane = new ArrayDeque<>();
+        private final ArrayDeque<String> chatLane = new ArrayDeque<>();
+        private PrintWriter writer;
+        private Thread writerThread;
+        private Runnable onFirstFlush;      // writer thread only after start()
+        private boolean closed;
+        private long droppedChat;
+        
+        /**
+         * Starts the writer thread. onFirstFlush, if given, runs on the writer
+         * thread right after the first control line has been flushed.
+         */
+        synchronized void start(PrintWriter writer, String threadName, Runnable onFirstFlush) {
+            this.writer = writer;
+            this.onFirstFlush = onFirstFlush;
+            writerThread = new Thread(this);
+            writerThread.setName(threadName);
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        
+        synchronized void offer(String line, Lane lane) {
+            if (closed) return;
+            
+            if (lane == Lane.CONTROL) {
+                controlLane.addLast(line);
+            } else {
+                if (chatLane.size() >= MAX_CHAT_BACKLOG) {
+                    chatLane.pollFirst();
+                    droppedChat++;
+                }
+                chatLane.addLast(line);
+            }
+            notifyAll();
+        }
+        
+        /**
+         * Stops accepting new lines and waits up to timeoutMillis for the writer
+         * to flush whatever is still queued on the control lane. Does not wait
+         * if the outbox was already closed.
+         */
+        void close(long timeoutMillis) {
+            if (close()) {
+                awaitDrained(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+            }
+        }
+        
+        /** Stops accepting new lines without waiting. Returns false if already closed. */
+        synchronized boolean close() {
+            if (closed) return false;
+            closed = true;
+            chatLane.clear();
+            notifyAll();
+            return true;
+        }
+        
+        /** Waits until the writer has exited or the deadline (System.nanoTime) passes. */
+        void awaitDrained(long deadlineNanos) {
+            Thread thread;
+            synchronized (this) {
+                thread = writerThread;
+            }
+            if (thread == null || thread == Thread.currentThread()) return;
+            
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+            if (remainingMillis <= 0) return;
+            try {
+                thread.join(remainingMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        @Override
+        public void run() {
+            boolean dirty = false;
+            try {
+                while (true) {
+                    String line = null;
+                    boolean control = false;
+                    boolean done;
+                    synchronized (this) {
+                        while (!closed && !dirty && controlLane.isEmpty() && chatLane.isEmpty()) {
+                            wait();
+                        }
+                        if (!controlLane.isEmpty()) {
+                            line = controlLane.pollFirst();
+                            control = true;
+                        } else if (!closed) {
+                            line = chatLane.pollFirst();
+                        }
+                        done = closed && line == null;
                     }
                     
-                    writer.println(message);
+                    // Writes and flushes happen outside the lock so a slow socket
+                    // never blocks the threads queueing lines for this client.
+                    if (line != null) {
+                        writer.println(line);
+                        dirty = true;
+                    }
                     
-                    // Check if writer is still valid
-                    if (writer.checkError()) {
-                        iterator.remove();
-                        System.out.println("Removed invalid client writer");
+                    // Control lines are flushed immediately; chat lines are batched
+                    // until the lanes run dry. checkError() flushes, so it is the
+                    // flush here and must not be called per line.
+                    if (control || line == null) {
+                        dirty = false;
+                        if (writer.checkError()) {
+                            System.out.println("Removed invalid client writer");
+                            synchronized (this) {
+                                closed = true;
+                                controlLane.clear();
+                                chatLane.clear();
+                            }
+                            return;
+                        }
+                        if (control && onFirstFlush != null) {
+                            onFirstFlush.run();
+                            onFirstFlush = null;
+                        }
+                    }
+                    
+                    if (done) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (this) {
+                    if (droppedChat > 0) {
+                        System.out.println(Thread.currentThread().getName() + " dropped " + droppedChat +
+                                         " chat lines from backlog");
                     }
-                } catch (Exception e) {
-                    iterator.remove();
-                    System.err.println("Error broadcasting message, removed client: " + e.getMessage());
                 }
             }
         }
     }
     
+    private static void broadcastMessage(String message, ClientHandler sender, Lane lane) {
+        if (message == null || message.trim().isEmpty()) {
+            return;
+        }
+        
+        // Large rooms are sharded across the fan-out pool. deliver() returns
+        // only when every recipient has the message queued, so a sender's
+        // next broadcast can't overtake this one for any recipient.
+        fanout.deliver(clients.values(), client -> {
+            // Don't send message back to sender
+            if (client == sender) {
+                return;
+            }
+            
+            if (lane == Lane.CONTROL) {
+                client.sendControl(message);
+            } else {
+                client.sendChat(message);
+            }
+        });
+    }
+    
     private static void broadcastSystemMessage(String message) {
-        broadcastMessage("SERVER: " + message, null);
+        broadcastMessage("SERVER: " + message, null, Lane.CONTROL);
     }
 }
\ No newline at end of file
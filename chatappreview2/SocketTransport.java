@@ -0,0 +1,67 @@
+import java.io.*;
+import java.net.*;
+
+/**
+ * TCP transport backed by a ServerSocket. This is what the server uses
+ * outside of benchmarks.
+ */
+class SocketTransport implements Transport {
+    private final ServerSocket serverSocket;
+
+    SocketTransport(int port, int backlog) throws IOException {
+        serverSocket = new ServerSocket(port, backlog);
+    }
+
+    @Override
+    public Connection accept() throws IOException {
+        return new SocketConnection(serverSocket.accept());
+    }
+
+    @Override
+    public boolean isClosed() {
+        return serverSocket.isClosed();
+    }
+
+    @Override
+    public String describe() {
+        return "tcp port " + serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private static class SocketConnection implements Connection {
+        private final Socket socket;
+
+        SocketConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return String.valueOf(socket.getInetAddress());
+        }
+
+        @Override
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+import java.io.*;
+
+/**
+ * Listener side of a server transport. The server core only talks to this
+ * interface, so the same command, broadcast and presence pipeline can run
+ * over real sockets (SocketTransport) or in-process queues (LoopbackTransport).
+ */
+interface Transport extends Closeable {
+
+    /**
+     * Blocks until the next client connects. Throws once the transport has
+     * been closed, which is how acceptor threads are told to stop.
+     */
+    Connection accept() throws IOException;
+
+    boolean isClosed();
+
+    /** Short human-readable description for the startup banner. */
+    String describe();
+
+    /**
+     * One client connection: a byte stream in each direction plus an address
+     * used for logging.
+     */
+    interface Connection extends Closeable {
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        String getRemoteAddress();
+
+        boolean isClosed();
+    }
+}